@@ -1,27 +1,39 @@
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DNSCache {
-    static public HashMap<DNSQuestion, DNSRecord> hm = new HashMap<>();
+    static public ConcurrentHashMap<DNSQuestion, DNSRecord> hm = new ConcurrentHashMap<>();
 
-    static boolean inCache(DNSMessage msg){
+    /**
+     * Looks up the answer to the question in one step, so another thread removing an expired
+     * entry can't get in between the check and the read.
+     * @param msg - the client's DNSMessage
+     * @return a copy of the cached answer with the time it has left to live, or null if there is
+     * no answer or it has expired
+     */
+    static DNSRecord getAnswer(DNSMessage msg){
+        DNSQuestion question = msg.questions.get(0);
+        DNSRecord record = hm.get(question);
+        if (record == null){
+            return null;
+        }
 
-        if (hm.containsKey(msg.questions.get(0))){
-            DNSRecord record = hm.get(msg.questions.get(0));
-            if (Instant.now().getEpochSecond() <= record.expiry){
-                return true;
-            }
-            else {
-                hm.remove(msg.questions.get(0));
-            }
+        long now = Instant.now().getEpochSecond();
+        if (now > record.expiry){
+            hm.remove(question, record);        // only if it has not been replaced meanwhile
+            return null;
         }
-        return false;
-    }
 
-    static DNSRecord getAnswer(DNSMessage msg){
-        DNSRecord ans = hm.get(msg.questions.get(0));
-        long elaspedTime = Instant.now().getEpochSecond() - ans.timestamp;
-        ans.ttl = (int) (ans.ttl - elaspedTime);        // assuming difference will never exceed int MAX_VALUE
+        // the cached record is shared between threads, so the ttl is only changed on a copy
+        DNSRecord ans = new DNSRecord();
+        ans.name = record.name;
+        ans.type = record.type;
+        ans.rClass = record.rClass;
+        ans.ttl = (int) (record.expiry - now);
+        ans.expiry = record.expiry;
+        ans.timestamp = record.timestamp;
+        ans.rdlength = record.rdlength;
+        ans.rdata = record.rdata;
         return ans;
     }
 
@@ -0,0 +1,429 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class DNSIterativeResolver {
+
+    static final short TYPE_A = 1;
+    static final short TYPE_NS = 2;
+    static final short TYPE_CNAME = 5;
+    static final short TYPE_SOA = 6;
+    static final short TYPE_PTR = 12;
+    static final short TYPE_MX = 15;
+    static final byte RCODE_SERVFAIL = 2;
+    static final byte RCODE_REFUSED = 5;
+
+    static final int TIMEOUT_MS = 800;     // per round of parallel queries
+    static final int PARALLEL = 3;         // servers asked at once for each round
+    static final int MAX_REFERRALS = 30;
+    static final int MAX_DEPTH = 4;        // nested lookups for CNAME targets and glueless name servers
+
+    static final String[] DEFAULT_ROOT_HINTS = {
+            "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10",
+            "192.5.5.241", "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30",
+            "193.0.14.129", "199.7.83.42", "202.12.27.33"
+    };
+
+    static boolean enabled = false;
+    static int authPort = 53;
+
+    // zone name ("" for the root) -> name servers for that zone, learned from referrals
+    static ConcurrentHashMap<String, Delegation> delegations = new ConcurrentHashMap<>();
+
+    // smoothed round trip time in milliseconds for every authoritative server we have asked
+    static ConcurrentHashMap<InetAddress, Long> rtts = new ConcurrentHashMap<>();
+
+    static class Delegation {
+        String zone;
+        ArrayList<InetAddress> servers;
+        long expiry;
+
+        Delegation(String zone, ArrayList<InetAddress> servers, long expiry) {
+            this.zone = zone;
+            this.servers = servers;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Replaces the built-in root servers with the addresses in a hosts-style file
+     * (an address, optionally followed by a name, on each line).
+     * @param f - the root hints file
+     * @throws IOException (reading the file)
+     */
+    static void loadRootHints(File f) throws IOException {
+        ArrayList<InetAddress> servers = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = DNSLocalData.splitLine(line);
+                byte[] address = fields.length > 0 ? DNSLocalData.parseAddress(fields[0]) : null;
+                if (address != null) {
+                    servers.add(InetAddress.getByAddress(address));
+                }
+            }
+        }
+        delegations.put("", new Delegation("", servers, Long.MAX_VALUE));
+    }
+
+    /**
+     * Resolves the client's question starting from the closest known zone cut, following
+     * referrals (and CNAMEs) down to an authoritative answer.
+     * @param request - the client's DNSMessage
+     * @return the response to send back to the client, SERVFAIL if it could not be resolved
+     * @throws IOException (writing the response)
+     */
+    static byte[] resolve(DNSMessage request) throws IOException {
+        DNSQuestion question = request.questions.get(0);
+        DNSMessage result;
+        try {
+            result = resolve(question.qName, question.qType, question.qClass, 0);
+        }
+        catch (IOException | RuntimeException e) {
+            result = null;      // no socket to send from, or names in a reply's rdata could not be read
+        }
+
+        DNSMessage response;
+        if (result == null) {
+            response = DNSMessage.buildResponse(request, new ArrayList<>(), RCODE_SERVFAIL);
+        }
+        else {
+            response = DNSMessage.buildResponse(request, result.answers, result.header.rcode);
+            response.header.tc = result.header.tc;      // still truncated over TCP, let the client retry
+        }
+        return response.toBytes(response);
+    }
+
+    /**
+     * @return the final reply with its answers made safe to copy into another message
+     * (including any answers from following a CNAME), or null if the name could not be resolved
+     */
+    static DNSMessage resolve(ArrayList<String> name, short type, short qClass, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            return null;
+        }
+
+        Delegation zone = closestDelegation(name);
+        for (int i=0; i<MAX_REFERRALS; i++) {
+            DNSMessage reply = query(zone.servers, name, type, qClass);
+            if (reply == null) {
+                return null;
+            }
+
+            if (reply.header.rcode != 0 || !reply.answers.isEmpty()) {
+                ArrayList<DNSRecord> answers = new ArrayList<>();
+                DNSRecord cname = null;
+                boolean answered = false;
+                for (DNSRecord r : reply.answers) {
+                    if (r.type == TYPE_CNAME) {
+                        cname = r;
+                    }
+                    answered |= r.type == type;
+                    answers.add(expandRdata(reply, r));
+                }
+
+                // the server only knows the alias, look up where it points
+                if (reply.header.rcode == 0 && !answered && cname != null) {
+                    DNSMessage target = resolve(readRdataName(reply, cname, 0), type, qClass, depth + 1);
+                    if (target != null) {
+                        answers.addAll(target.answers);
+                        reply.header.rcode = target.header.rcode;
+                        reply.header.tc |= target.header.tc;
+                    }
+                }
+                reply.answers = answers;
+                return reply;
+            }
+
+            Delegation next = referral(reply, name, zone, depth);
+            if (next == null) {
+                // no data for this type from an authority, otherwise a lame server
+                return reply.header.aa ? reply : null;
+            }
+            zone = next;
+        }
+        return null;
+    }
+
+    static Delegation closestDelegation(ArrayList<String> name) throws IOException {
+        long now = Instant.now().getEpochSecond();
+        for (int i=0; i<name.size(); i++) {
+            String zone = String.join(".", name.subList(i, name.size())).toLowerCase();
+            Delegation d = delegations.get(zone);
+            if (d != null) {
+                if (now <= d.expiry) {
+                    return d;
+                }
+                delegations.remove(zone);
+            }
+        }
+
+        Delegation root = delegations.get("");
+        if (root == null) {
+            ArrayList<InetAddress> servers = new ArrayList<>();
+            for (String hint : DEFAULT_ROOT_HINTS) {
+                servers.add(InetAddress.getByName(hint));
+            }
+            root = new Delegation("", servers, Long.MAX_VALUE);
+            delegations.put("", root);
+        }
+        return root;
+    }
+
+    /**
+     * Reads a referral out of a reply: the NS records for the deepest zone between the current
+     * zone and the name, with addresses from the glue records (or looked up if there is no glue).
+     * The delegation is cached so later queries start from it.
+     * @return the delegation to follow, or null if the reply is not a referral closer to the name
+     */
+    static Delegation referral(DNSMessage reply, ArrayList<String> name, Delegation current, int depth) throws IOException {
+        String qName = String.join(".", name).toLowerCase();
+        String zone = null;
+        for (DNSRecord r : reply.authorityRecords) {
+            String owner = String.join(".", r.name).toLowerCase();
+            if (r.type == TYPE_NS && owner.length() > current.zone.length() && inZone(qName, owner)
+                    && (zone == null || owner.length() > zone.length())) {
+                zone = owner;
+            }
+        }
+        if (zone == null) {
+            return null;
+        }
+
+        ArrayList<String> nsNames = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (DNSRecord r : reply.authorityRecords) {
+            if (r.type == TYPE_NS && String.join(".", r.name).equalsIgnoreCase(zone)) {
+                nsNames.add(String.join(".", readRdataName(reply, r, 0)).toLowerCase());
+                ttl = Math.min(ttl, r.ttl);
+            }
+        }
+
+        ArrayList<InetAddress> servers = new ArrayList<>();
+        for (DNSRecord r : reply.additionalRecords) {
+            if (r.type == TYPE_A && r.rdlength == 4 && nsNames.contains(String.join(".", r.name).toLowerCase())) {
+                servers.add(InetAddress.getByAddress(r.rdata));
+            }
+        }
+
+        // glueless delegation, resolve the name servers themselves
+        for (int i=0; i<nsNames.size() && servers.isEmpty(); i++) {
+            ArrayList<String> nsName = new ArrayList<>(Arrays.asList(nsNames.get(i).split("\\.")));
+            DNSMessage ns = resolve(nsName, TYPE_A, (short) 1, depth + 1);
+            if (ns != null) {
+                for (DNSRecord r : ns.answers) {
+                    if (r.type == TYPE_A && r.rdlength == 4) {
+                        servers.add(InetAddress.getByAddress(r.rdata));
+                    }
+                }
+            }
+        }
+        if (servers.isEmpty()) {
+            return null;
+        }
+
+        Delegation d = new Delegation(zone, servers, Instant.now().getEpochSecond() + ttl);
+        delegations.put(zone, d);
+        return d;
+    }
+
+    static boolean inZone(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /**
+     * Sends the question to the fastest known servers a few at a time, all of a round in parallel,
+     * and takes the first usable reply. Every reply and timeout updates that server's RTT.
+     * @return the reply, or null if no server gave a usable one
+     */
+    static DNSMessage query(ArrayList<InetAddress> servers, ArrayList<String> name, short type, short qClass) throws IOException {
+        ArrayList<InetAddress> ordered = new ArrayList<>(servers);
+        // servers we have never asked sort first so they get an RTT too
+        ordered.sort((a, b) -> Long.compare(rtts.getOrDefault(a, 0L), rtts.getOrDefault(b, 0L)));
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (int start=0; start<ordered.size(); start+=PARALLEL) {
+                short id = (short) ThreadLocalRandom.current().nextInt();
+                byte[] query = buildQuery(id, name, type, qClass);
+
+                HashMap<InetAddress, Long> sent = new HashMap<>();
+                for (int i=start; i<Math.min(start + PARALLEL, ordered.size()); i++) {
+                    try {
+                        socket.send(new DatagramPacket(query, query.length, ordered.get(i), authPort));
+                        sent.put(ordered.get(i), System.nanoTime());
+                    }
+                    catch (IOException e) {
+                        // unreachable from here (no route for its address family), try the others
+                        updateRtt(ordered.get(i), TIMEOUT_MS * 2L);
+                    }
+                }
+
+                long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+                byte[] receive = new byte[1500];
+                while (!sent.isEmpty()) {
+                    long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    socket.setSoTimeout((int) remaining);
+
+                    DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                    try {
+                        socket.receive(packet);
+                    }
+                    catch (SocketTimeoutException e) {
+                        break;
+                    }
+
+                    Long sentAt = sent.get(packet.getAddress());
+                    if (sentAt == null) {
+                        continue;
+                    }
+                    DNSMessage reply;
+                    try {
+                        reply = DNSMessage.decodeMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    }
+                    catch (IOException | RuntimeException e) {
+                        continue;       // malformed reply, wait for the others
+                    }
+                    if (reply.header.id != id || !reply.header.qr) {
+                        continue;
+                    }
+
+                    sent.remove(packet.getAddress());
+                    updateRtt(packet.getAddress(), (System.nanoTime() - sentAt) / 1_000_000);
+                    if (reply.header.rcode == RCODE_SERVFAIL || reply.header.rcode == RCODE_REFUSED) {
+                        continue;
+                    }
+                    if (reply.header.tc) {
+                        // too big for UDP, ask the same server over TCP for all of it
+                        DNSMessage full = queryTcp(packet.getAddress(), query, id);
+                        if (full != null) {
+                            return full;
+                        }
+                    }
+                    return reply;
+                }
+
+                // the servers that never answered are pushed to the back of the line
+                for (InetAddress server : sent.keySet()) {
+                    updateRtt(server, TIMEOUT_MS * 2L);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the query over TCP, for replies that were truncated over UDP.
+     * @return the reply, or null if the server did not give a usable one
+     */
+    static DNSMessage queryTcp(InetAddress server, byte[] query, short id) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(server, authPort), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+
+            // over TCP every message is prefixed with its length
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.length);
+            out.write(query);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            DNSMessage reply = DNSMessage.decodeMessage(data);
+            return reply.header.id == id && reply.header.qr ? reply : null;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static void updateRtt(InetAddress server, long rtt) {
+        rtts.merge(server, rtt, (old, sample) -> (old * 7 + sample) / 8);
+    }
+
+    static byte[] buildQuery(short id, ArrayList<String> name, short type, short qClass) throws IOException {
+        DNSMessage query = new DNSMessage();
+        query.header = new DNSHeader();
+        query.header.id = id;
+        query.header.idArr = new byte[]{(byte) (id >>> 8), (byte) id};
+        query.header.qdcount = 1;       // recursion not desired, we are doing it
+
+        DNSQuestion question = new DNSQuestion();
+        question.qName = name;
+        question.qType = type;
+        question.qClass = qClass;
+        query.questions.add(question);
+
+        return query.toBytes(query);
+    }
+
+    /**
+     * Reads a domain name out of a record's rdata, following compression pointers into the rest
+     * of the message the record came from.
+     * @param skip - bytes of rdata before the name
+     */
+    static ArrayList<String> readRdataName(DNSMessage msg, DNSRecord record, int skip) throws IOException {
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(msg.bytes);
+        byteStream.skip(record.rdataOffset + skip);
+        return msg.readDomainName(byteStream);
+    }
+
+    /**
+     * Rewrites names in the rdata without compression, since pointers into the authoritative
+     * server's reply would be wrong in the response we send to the client.
+     */
+    static DNSRecord expandRdata(DNSMessage msg, DNSRecord record) throws IOException {
+        int skip = 0;
+        int names = 1;
+        if (record.type == TYPE_MX) {
+            skip = 2;       // preference comes before the exchange name
+        }
+        else if (record.type == TYPE_SOA) {
+            names = 2;      // mname and rname, then the 20 bytes of serial and timers
+        }
+        else if (record.type != TYPE_NS && record.type != TYPE_CNAME && record.type != TYPE_PTR) {
+            return record;
+        }
+
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(msg.bytes);
+        byteStream.skip(record.rdataOffset);
+        ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        rdata.write(byteStream.readNBytes(skip));
+        for (int i=0; i<names; i++) {
+            DNSMessage.writeDomainName(rdata, new HashMap<>(), msg.readDomainName(byteStream));
+        }
+
+        // whatever follows the names is copied as it is
+        int end = record.rdataOffset + (record.rdlength & 0xFFFF);
+        int position = msg.bytes.length - byteStream.available();
+        if (position > end) {
+            throw new StreamCorruptedException("names run past the end of the rdata");
+        }
+        rdata.write(byteStream.readNBytes(end - position));
+
+        record.rdata = rdata.toByteArray();
+        record.rdlength = (short) record.rdata.length;
+        return record;
+    }
+}
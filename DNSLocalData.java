@@ -0,0 +1,311 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+public class DNSLocalData {
+
+    static final byte RCODE_NXDOMAIN = 3;
+    static final short TYPE_A = 1;
+    static final short TYPE_AAAA = 28;
+    static final int LOCAL_TTL = 300;
+
+    static final byte BLOCKED = 0x1;
+    static final byte LOCAL = 0x2;
+
+    static final String WILDCARD = "*";
+
+    // text made of only these characters is always parsed as an IPv6 literal, never looked up
+    static final Pattern IPV6 = Pattern.compile("[0-9a-fA-F:][0-9a-fA-F:.]*");
+    static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    static ArrayList<File> zoneFiles = new ArrayList<>();
+    static ArrayList<File> blockFiles = new ArrayList<>();
+
+    // the trie currently used to answer queries. A reload builds a complete new trie and swaps this
+    // reference, so queries never see a half loaded trie and never wait on a reload.
+    static volatile Node root = new Node();
+
+    /**
+     * One label of a domain name. Names are stored reversed (com -> example -> www) so every name
+     * under the same suffix shares the nodes for that suffix. While loading, children are kept in a
+     * HashMap; freeze() then packs them into two sorted arrays, which is much smaller than a HashMap
+     * when there are millions of entries.
+     */
+    static class Node {
+        static final String[] NO_LABELS = new String[0];
+        static final Node[] NO_CHILDREN = new Node[0];
+
+        String[] labels = NO_LABELS;
+        Node[] children = NO_CHILDREN;
+        byte flags;
+        byte[][] addresses;                 // rdata for local A/AAAA answers, null if none
+        HashMap<String, Node> building;     // only used while the trie is loading
+
+        Node child(String label) {
+            int i = Arrays.binarySearch(labels, label);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(String label) {
+            if (building == null) {
+                building = new HashMap<>();
+            }
+            return building.computeIfAbsent(label, l -> new Node());
+        }
+
+        void freeze() {
+            if (building == null) {
+                return;
+            }
+            labels = building.keySet().toArray(new String[0]);
+            Arrays.sort(labels);
+            children = new Node[labels.length];
+            for (int i=0; i<labels.length; i++) {
+                children[i] = building.get(labels[i]);
+                children[i].freeze();
+            }
+            building = null;
+        }
+    }
+
+    /**
+     * Loads the zone and blocklist files and starts a daemon thread that reloads them whenever
+     * one of them changes on disk.
+     * @param reloadSeconds - how often to check the files for changes
+     * @throws IOException (reading the files for the first time)
+     */
+    static void start(long reloadSeconds) throws IOException {
+        // taken before loading, so a file changed while it loads is loaded again on the next check
+        long loadedModified = lastModified();
+        root = load();
+
+        Thread reloader = new Thread(() -> {
+            long lastModified = loadedModified;
+            while (true) {
+                try {
+                    Thread.sleep(reloadSeconds * 1000);
+                    long modified = lastModified();
+                    if (modified != lastModified) {
+                        root = load();
+                        lastModified = modified;
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (IOException e) {
+                    // keep answering from the previous trie until the files are readable again
+                    System.out.println("Could not reload local data: " + e.getMessage());
+                }
+            }
+        }, "local-data-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    static long lastModified() {
+        long modified = 0;
+        for (File f : zoneFiles) {
+            modified = Math.max(modified, f.lastModified());
+        }
+        for (File f : blockFiles) {
+            modified = Math.max(modified, f.lastModified());
+        }
+        return modified;
+    }
+
+    /**
+     * Builds a new trie from the zone and blocklist files.
+     * Zone files are hosts-style: an IPv4 or IPv6 address followed by one or more names.
+     * Blocklists are one name per line, optionally prefixed with a sink address (0.0.0.0 name).
+     * In both, a name starting with "*." matches every subdomain of the rest of the name.
+     * A line with a bad address is skipped and counted, the rest of the file still loads.
+     * @return the loaded trie
+     * @throws IOException (reading the files)
+     */
+    static Node load() throws IOException {
+        Node newRoot = new Node();
+        HashMap<String, String> labelPool = new HashMap<>();    // share one String per distinct label
+        int entries = 0;
+        int skipped = 0;
+
+        for (File f : zoneFiles) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = splitLine(line);
+                    if (fields.length == 0) {
+                        continue;
+                    }
+                    byte[] address = fields.length < 2 ? null : parseAddress(fields[0]);
+                    if (address == null) {
+                        if (skipped++ == 0) {
+                            System.out.println("Skipping bad line in " + f + ": " + line);
+                        }
+                        continue;
+                    }
+                    for (int i=1; i<fields.length; i++) {
+                        Node node = insert(newRoot, fields[i], labelPool);
+                        node.flags |= LOCAL;
+                        if (node.addresses == null) {
+                            node.addresses = new byte[][]{address};
+                        }
+                        else {
+                            node.addresses = Arrays.copyOf(node.addresses, node.addresses.length + 1);
+                            node.addresses[node.addresses.length - 1] = address;
+                        }
+                        entries++;
+                    }
+                }
+            }
+        }
+
+        for (File f : blockFiles) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = splitLine(line);
+                    if (fields.length == 0) {
+                        continue;
+                    }
+                    // hosts-style blocklists point every name at a sink address, skip it
+                    int start = parseAddress(fields[0]) != null ? 1 : 0;
+                    for (int i=start; i<fields.length; i++) {
+                        insert(newRoot, fields[i], labelPool).flags |= BLOCKED;
+                        entries++;
+                    }
+                }
+            }
+        }
+
+        newRoot.freeze();
+        System.out.println("Loaded " + entries + " local data entries"
+                + (skipped > 0 ? ", skipped " + skipped + " bad lines" : ""));
+        return newRoot;
+    }
+
+    static String[] splitLine(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        line = line.trim();
+        return line.isEmpty() ? new String[0] : line.split("\\s+");
+    }
+
+    /**
+     * Reads an IPv4 or IPv6 address literal, without ever looking the field up as a host name.
+     * @return the address, or null if the field is not a valid address
+     */
+    static byte[] parseAddress(String field) {
+        if (field.contains(":")) {
+            if (!IPV6.matcher(field).matches()) {
+                return null;
+            }
+            try {
+                return InetAddress.getByName(field).getAddress();
+            }
+            catch (UnknownHostException e) {
+                return null;
+            }
+        }
+
+        if (!IPV4.matcher(field).matches()) {
+            return null;
+        }
+        String[] octets = field.split("\\.");
+        byte[] address = new byte[4];
+        for (int i=0; i<4; i++) {
+            int octet = Integer.parseInt(octets[i]);
+            if (octet > 255) {
+                return null;
+            }
+            address[i] = (byte) octet;
+        }
+        return address;
+    }
+
+    static Node insert(Node root, String name, HashMap<String, String> labelPool) {
+        String[] pieces = name.toLowerCase().split("\\.");
+        Node node = root;
+        for (int i=pieces.length-1; i>=0; i--) {
+            if (pieces[i].isEmpty()) {
+                continue;       // trailing dot of a fully qualified name
+            }
+            String label = labelPool.computeIfAbsent(pieces[i], l -> l);
+            node = node.addChild(label);
+        }
+        return node;
+    }
+
+    /**
+     * Checks the question in the request against the local zones and blocklists.
+     * A blocked name gets NXDOMAIN; a local name gets its A/AAAA records (or no answers if it has
+     * none of the requested type).
+     * @param request - the client's DNSMessage
+     * @return the response to send back, or null if the name is not local data
+     */
+    static DNSMessage answer(DNSMessage request) {
+        DNSQuestion question = request.questions.get(0);
+        ArrayList<String> qName = question.qName;
+        Node node = root;
+        Node wildcard = null;
+        boolean blocked = false;
+
+        for (int i=qName.size()-1; i>=0 && node != null; i--) {
+            // a wildcard only matches when there is at least one more label below it
+            Node star = node.child(WILDCARD);
+            if (star != null) {
+                blocked |= (star.flags & BLOCKED) != 0;
+                if ((star.flags & LOCAL) != 0) {
+                    wildcard = star;
+                }
+            }
+            node = node.child(qName.get(i).toLowerCase());
+        }
+
+        if (node != null) {
+            blocked |= (node.flags & BLOCKED) != 0;
+            if ((node.flags & LOCAL) == 0) {
+                node = wildcard;
+            }
+        }
+        else {
+            node = wildcard;
+        }
+
+        if (blocked) {
+            return DNSMessage.buildResponse(request, new ArrayList<>(), RCODE_NXDOMAIN);
+        }
+        if (node == null) {
+            return null;
+        }
+
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        for (byte[] address : node.addresses) {
+            short type = address.length == 4 ? TYPE_A : TYPE_AAAA;
+            if (type != question.qType) {
+                continue;
+            }
+            DNSRecord record = new DNSRecord();
+            record.name = qName;
+            record.type = type;
+            record.rClass = question.qClass;
+            record.ttl = LOCAL_TTL;
+            record.timestamp = Instant.now().getEpochSecond();
+            record.expiry = record.timestamp + record.ttl;
+            record.rdlength = (short) address.length;
+            record.rdata = address;
+            answers.add(record);
+        }
+        return DNSMessage.buildResponse(request, answers, (byte) 0);
+    }
+}
@@ -13,6 +13,8 @@ public class DNSMessage {
     ArrayList<DNSRecord> additionalRecords = new ArrayList<>();
     byte[] bytes;
 
+    static final int MAX_POINTERS = 127;
+
     /**
      * Decodes incoming byte array into DNSMessage
      * @param bytes - incoming byte array from DatagramPacket
@@ -65,12 +67,16 @@ public class DNSMessage {
      * Reads domain name from input stream and returns an ArrayList of the domain
      * name substrings. The first byte read is the length of the first substring,
      * followed by the ascii char values for the substring. The domain name ends
-     * with a 0-byte.
+     * with a 0-byte, or with a compression pointer to the rest of the name.
      * @param inStream - read in the domain name from the input stream
      * @return an Arraylist<String> containing the domain name substrings
      * @throws IOException (reading from ByteArrayInputStream)
      */
     ArrayList<String> readDomainName(InputStream inStream) throws IOException {
+        return readDomainName(inStream, 0);
+    }
+
+    ArrayList<String> readDomainName(InputStream inStream, int pointers) throws IOException {
         // --read the pieces of a domain name starting from the current position of the input stream
         ArrayList<String> domainArr = new ArrayList<>();
         byte[] bytesIn;
@@ -78,6 +84,13 @@ public class DNSMessage {
 
         // stop looping when a 0-byte is found
         while (length[0] != 0){
+            // a compression pointer ends the name, the rest of it was written earlier in the message
+            if ((length[0] & 0xC0) == 0xC0) {
+                bytesIn = inStream.readNBytes(1);
+                domainArr.addAll(readDomainName(((length[0] << 8) | (bytesIn[0] & 0xFF)) & 0xFFFF, pointers + 1));
+                break;
+            }
+
             bytesIn = inStream.readNBytes(length[0]);   // read in # of bytes equal to substring length
             String str = new String(bytesIn);           // convert byte array to string
             domainArr.add(str);
@@ -98,6 +111,15 @@ public class DNSMessage {
      * @throws IOException (reading from ByteArrayInputStream)
      */
     ArrayList<String> readDomainName(int first2Bytes) throws IOException {
+        return readDomainName(first2Bytes, 1);
+    }
+
+    ArrayList<String> readDomainName(int first2Bytes, int pointers) throws IOException {
+        // a name has at most 127 labels, so more pointers than that means they loop
+        if (pointers > MAX_POINTERS){
+            throw new StreamCorruptedException("compression pointer loop");
+        }
+
         // new instantiation of the ByteArrayInputStream to find where the domain
         // name was written earlier
         ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes);
@@ -109,7 +131,7 @@ public class DNSMessage {
             throw new StreamCorruptedException();
         }
 
-        return readDomainName(byteStream);              // read full domain name from input stream
+        return readDomainName(byteStream, pointers);    // read full domain name from input stream
     }
 
     /**
@@ -119,6 +141,41 @@ public class DNSMessage {
      * @return  a DNSMessage with the answer to the client's question
      */
     static DNSMessage buildResponse(DNSMessage request, DNSRecord answer){
+        DNSMessage response = copyRequest(request);
+
+        // add the answer from the cache to the arraylist of answers
+        response.answers.add(answer);
+//        System.out.println("Response Answers: " + response.answers);
+
+        return response;
+    }
+
+    /**
+     * Build a DNSMessage to send back to the client with any number of answers (including none)
+     * and a response code, for answers that do not come from the cache
+     * @param request - the client's DNSMessage
+     * @param answers - the answers to the client's question
+     * @param rcode - the response code (0 for no error, 3 for NXDOMAIN)
+     * @return  a DNSMessage with the answers to the client's question
+     */
+    static DNSMessage buildResponse(DNSMessage request, ArrayList<DNSRecord> answers, byte rcode){
+        DNSMessage response = copyRequest(request);
+
+        response.answers = answers;
+        response.header.ancount = (short) answers.size();
+        response.header.ra = true;
+        response.header.rcode = rcode;
+
+        return response;
+    }
+
+    /**
+     * Start a response from the request: the response header, the questions and the
+     * authority and additional records. The answers are left to the caller.
+     * @param request - the client's DNSMessage
+     * @return  a DNSMessage with no answers yet
+     */
+    private static DNSMessage copyRequest(DNSMessage request){
         DNSMessage response = new DNSMessage();
 
         response.header = DNSHeader.buildResponseHeader(request, response);
@@ -128,10 +185,6 @@ public class DNSMessage {
         response.questions = request.questions;
 //        System.out.println("Response Questions: " + response.questions);
 
-        // add the answer from the cache to the arraylist of answers
-        response.answers.add(answer);
-//        System.out.println("Response Answers: " + response.answers);
-
         // copy the authority records from the Request
         response.authorityRecords = request.authorityRecords;
 //        System.out.println("Response Auth Recs: " + response.authorityRecords);
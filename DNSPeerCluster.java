@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class DNSPeerCluster {
+
+    static final int TIMEOUT_MS = 500;     // for the owner's own work, on top of any upstream fetch
+    static final int WORKERS = 16;
+    static final int VIRTUAL_NODES = 64;   // points per member on the ring, to spread questions evenly
+    static final int BACKOFF_MS = 30000;   // how long a member that did not answer is passed over
+
+    static boolean enabled = false;
+    static InetSocketAddress self;
+
+    // consistent hash ring: every member appears VIRTUAL_NODES times, and a question belongs to
+    // the first member at or after its own hash. Adding or removing one member only moves the
+    // questions next to its points.
+    static TreeMap<Long, InetSocketAddress> ring = new TreeMap<>();
+
+    // the only addresses the peer socket answers, so it is not an open resolver for anyone else
+    static HashSet<InetAddress> memberAddresses = new HashSet<>();
+
+    // member -> System.currentTimeMillis() until which its questions go to the next member instead
+    static ConcurrentHashMap<InetSocketAddress, Long> down = new ConcurrentHashMap<>();
+
+    // answers peer queries, so one slow upstream fetch doesn't hold up the owner's other questions
+    static ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread t = new Thread(r, "peer-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static InetSocketAddress parseMember(String member) {
+        String[] hostPort = member.split(":");
+        return new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+    }
+
+    /**
+     * Adds cluster members to the ring. Every instance must be given the same list
+     * (including itself) so they all agree on who owns each question.
+     * @param members - comma separated host:port of each member's peer socket
+     */
+    static void addMembers(String members) {
+        for (String member : members.split(",")) {
+            InetSocketAddress address = parseMember(member);
+            memberAddresses.add(address.getAddress());
+            for (int i=0; i<VIRTUAL_NODES; i++) {
+                ring.put(hash(member + "#" + i), address);
+            }
+        }
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i=0; i<8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM has MD5
+        }
+    }
+
+    /**
+     * How long to wait for the owner. It may have to fetch the answer itself first, and giving up
+     * sooner would send the question upstream twice.
+     */
+    static int timeoutMs() {
+        if (DNSIterativeResolver.enabled) {
+            return 4 * DNSIterativeResolver.TIMEOUT_MS + TIMEOUT_MS;      // a few rounds of referrals
+        }
+        if (DNSTLSUpstream.enabled) {
+            return 2 * DNSTLSUpstream.TIMEOUT_MS + TIMEOUT_MS;            // a query and its retry
+        }
+        return TIMEOUT_MS;
+    }
+
+    /**
+     * @return the first member at or after the question's hash, going round the ring, that has
+     * not recently failed to answer (this instance if every other member has)
+     */
+    static InetSocketAddress owner(DNSQuestion question) {
+        String key = String.join(".", question.qName).toLowerCase() + "/" + question.qType + "/" + question.qClass;
+        long h = hash(key);
+        long now = System.currentTimeMillis();
+        for (Map<Long, InetSocketAddress> part : List.of(ring.tailMap(h, true), ring.headMap(h, false))) {
+            for (InetSocketAddress member : part.values()) {
+                Long downUntil = down.get(member);
+                if (member.equals(self) || downUntil == null || now >= downUntil) {
+                    return member;
+                }
+            }
+        }
+        return self;
+    }
+
+    /**
+     * Asks the instance that owns the question for the response to a query that missed this
+     * instance's cache. The owner answers from its cache (or fetches and caches the answer
+     * itself), so each name only goes upstream once for the whole cluster. Only a response from
+     * the owner, to this query, is taken; if there is none in time the owner is passed over for
+     * BACKOFF_MS.
+     * @param msg - the decoded query
+     * @param data - the query as received
+     * @param length - length of the query in the array
+     * @return the response, with the query's ID, or null if this instance is the owner or the
+     * owner did not answer, and the query should go upstream
+     * @throws IOException for errors opening the socket or sending the query
+     */
+    static byte[] resolve(DNSMessage msg, byte[] data, int length) throws IOException {
+        InetSocketAddress owner = owner(msg.questions.get(0));
+        if (owner.equals(self)) {
+            return null;
+        }
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(data, length, owner));
+
+            long deadline = System.nanoTime() + timeoutMs() * 1_000_000L;
+            byte[] receive = new byte[65535];      // the owner may have fetched a big one over TCP or TLS
+            while (true) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                socket.receive(packet);
+                if (!packet.getSocketAddress().equals(owner)) {
+                    continue;
+                }
+
+                byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+                try {
+                    DNSMessage decoded = DNSMessage.decodeMessage(response);
+                    if (decoded.header.qr && decoded.header.id == msg.header.id) {
+                        down.remove(owner);
+                        return response;
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    // not a response we can use, same as none at all
+                }
+                break;
+            }
+        }
+        catch (SocketTimeoutException e) {
+            // no answer in time
+        }
+
+        System.out.println("No usable response from peer " + owner + ", passing it over for " + BACKOFF_MS + "ms");
+        down.put(owner, System.currentTimeMillis() + BACKOFF_MS);
+        return null;
+    }
+
+    /**
+     * Starts a daemon thread receiving the other members' queries on this instance's peer socket,
+     * each answered on a worker thread. The protocol is plain DNS over UDP: a peer sends the
+     * client's query and gets the response.
+     * @throws IOException (opening the peer socket)
+     */
+    static void start() throws IOException {
+        if (self == null) {
+            System.out.println("--peers also needs --peer-self, running without peers");
+            return;
+        }
+        DatagramSocket peerSocket = new DatagramSocket(self.getPort());
+
+        Thread listener = new Thread(() -> {
+            byte[] receive = new byte[1500];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                try {
+                    peerSocket.receive(packet);
+                    if (!memberAddresses.contains(packet.getAddress())) {
+                        continue;       // only members may ask, anyone else could use us to resolve
+                    }
+                    if (packet.getLength() < 12) {
+                        continue;       // shorter than a DNS header
+                    }
+                    long startNanos = System.nanoTime();
+                    byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                    InetSocketAddress peer = (InetSocketAddress) packet.getSocketAddress();
+                    workers.execute(() -> {
+                        try {
+                            answer(peerSocket, data, peer, startNanos);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            // the peer falls back to its own upstream when it gets no answer
+                            System.out.println("Could not answer peer " + peer + ": " + e);
+                        }
+                    });
+                }
+                catch (IOException | RuntimeException e) {
+                    System.out.println("Could not receive from peers: " + e);
+                }
+            }
+        }, "peer-listener");
+        listener.setDaemon(true);
+        listener.start();
+        enabled = true;
+    }
+
+    /**
+     * Answers another member's query from the cache, or fetches and caches the answer, and logs
+     * it as asked by that member. Runs on a worker thread.
+     * @param peerSocket - the socket the query came in on
+     * @param data - the query as received
+     * @param peer - the member that asked
+     * @param startNanos - System.nanoTime() when the query was received, for the query log
+     * @throws IOException (decoding the query or response, fetching the answer, sending it back)
+     */
+    static void answer(DatagramSocket peerSocket, byte[] data, InetSocketAddress peer, long startNanos) throws IOException {
+        DNSMessage msg = DNSMessage.decodeMessage(data);
+
+        byte[] responseData;
+        byte rcode;
+        byte source;
+        DNSRecord answer = DNSCache.getAnswer(msg);
+        if (answer != null) {
+            DNSMessage response = DNSMessage.buildResponse(msg, answer);
+            responseData = response.toBytes(response);
+            rcode = response.header.rcode;
+            source = DNSQueryLog.SOURCE_PEER_CACHE;
+        }
+        else {
+            // never ask another peer from here, we are the owner
+            responseData = DNSServer.forward(msg, data, data.length);
+            DNSMessage upstreamMsg = DNSMessage.decodeMessage(responseData);
+            if (upstreamMsg.header.qr && upstreamMsg.header.ancount > 0) {
+                DNSCache.addAnswer(upstreamMsg);
+            }
+            rcode = upstreamMsg.header.rcode;
+            source = DNSQueryLog.SOURCE_PEER_UPSTREAM;
+        }
+
+        peerSocket.send(new DatagramPacket(responseData, responseData.length, peer));
+        DNSQueryLog.log(peer.getAddress(), peer.getPort(), msg.questions.get(0), rcode, source, startNanos);
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class DNSQueryLog {
+
+    static final byte[] MAGIC = {'D', 'N', 'Q', 'L', 1};      // file type and format version
+
+    static final byte SOURCE_UPSTREAM = 0;     // cache miss
+    static final byte SOURCE_CACHE = 1;
+    static final byte SOURCE_LOCAL = 2;
+    static final byte SOURCE_PEER = 3;         // cache miss, answered by the member that owns it
+    static final byte SOURCE_PEER_CACHE = 4;   // asked by another member, answered from the cache
+    static final byte SOURCE_PEER_UPSTREAM = 5;    // asked by another member, a cache miss
+
+    static final int CAPACITY = 8192;          // records in the ring, a power of 2
+    static final int SLOT_SIZE = 296;          // room for the fixed fields and a 255 byte name
+    static final int BATCH = 512;              // records written between flushes at most
+
+    static boolean enabled = false;
+    static File directory;
+    static long maxFileBytes = 64L * 1024 * 1024;
+    static int keepFiles = 16;                 // older files are deleted, 0 keeps them all
+    static long lastStamp = 0;                 // only used by the writer thread, after start()
+
+    // Request threads claim a slot by moving head forward and publish it by setting the slot's
+    // sequence to position + 1. The writer thread frees a slot by setting its sequence to
+    // position + CAPACITY, one lap ahead. A full ring means the record is dropped, never waited on.
+    static byte[] slots = new byte[CAPACITY * SLOT_SIZE];
+    static AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    static AtomicLong head = new AtomicLong();
+    static long tail = 0;                      // only used by the writer thread
+    static AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Starts the daemon thread that moves records from the ring into rotating files in the
+     * query log directory.
+     * @throws IOException (opening the first file)
+     */
+    static void start() throws IOException {
+        for (int i=0; i<CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        directory.mkdirs();
+        DataOutputStream first = openFile();
+
+        Thread writer = new Thread(() -> {
+            DataOutputStream out = first;
+            long written = 0;
+            long reportedDrops = 0;
+            while (true) {
+                try {
+                    if (out == null) {
+                        out = openFile();       // the last one failed, start over in a new file
+                    }
+                    int count = 0;
+                    while (count < BATCH && poll(out)) {
+                        count++;
+                    }
+                    if (count == 0) {
+                        LockSupport.parkNanos(5_000_000);       // nothing to do, check again in 5ms
+                        continue;
+                    }
+                    out.flush();
+
+                    written += count;
+                    if (out.size() >= maxFileBytes) {
+                        out.close();
+                        out = openFile();
+                    }
+                    long drops = dropped.get();
+                    if (drops != reportedDrops) {
+                        System.out.println("Query log dropped " + (drops - reportedDrops) + " records, "
+                                + written + " written");
+                        reportedDrops = drops;
+                    }
+                }
+                catch (IOException e) {
+                    System.out.println("Could not write query log: " + e.getMessage());
+                    if (out != null) {
+                        try {
+                            out.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                        out = null;
+                    }
+                    LockSupport.parkNanos(1_000_000_000L);
+                }
+            }
+        }, "query-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        enabled = true;
+    }
+
+    /**
+     * Opens a new file named after the time, one millisecond later than the last one if need be so
+     * no file is ever overwritten, and deletes the oldest files past keepFiles.
+     */
+    static DataOutputStream openFile() throws IOException {
+        lastStamp = Math.max(System.currentTimeMillis(), lastStamp + 1);
+        File f = new File(directory, "querylog-" + lastStamp + ".bin");
+        while (f.exists()) {
+            lastStamp++;
+            f = new File(directory, "querylog-" + lastStamp + ".bin");
+        }
+        OutputStream file = Files.newOutputStream(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+        out.write(MAGIC);
+
+        File[] files = directory.listFiles((dir, name) -> name.matches("querylog-\\d+\\.bin"));
+        if (keepFiles > 0 && files != null && files.length > keepFiles) {
+            Arrays.sort(files, Comparator.comparingLong(DNSQueryLog::stamp));
+            for (int i=0; i<files.length - keepFiles; i++) {
+                files[i].delete();
+            }
+        }
+        return out;
+    }
+
+    static long stamp(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring("querylog-".length(), name.length() - ".bin".length()));
+    }
+
+    /**
+     * Records one query. Called on the request thread, so it only copies the fields into a free
+     * slot of the ring, without locking; if the ring is full the record is dropped.
+     * @param client - who asked (the member, for SOURCE_PEER_CACHE and SOURCE_PEER_UPSTREAM)
+     * @param clientPort - port they asked from
+     * @param question - what they asked
+     * @param rcode - response code sent back
+     * @param source - one of the SOURCE_ constants
+     * @param startNanos - System.nanoTime() when the query was received
+     */
+    static void log(InetAddress client, int clientPort, DNSQuestion question, byte rcode, byte source, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+
+        long pos = head.get();
+        while (true) {
+            long available = sequences.get((int) pos & (CAPACITY - 1)) - pos;
+            if (available == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            }
+            else if (available < 0) {
+                dropped.incrementAndGet();      // writer is a full lap behind
+                return;
+            }
+            else {
+                pos = head.get();               // another thread took this slot
+            }
+        }
+
+        int i = ((int) pos & (CAPACITY - 1)) * SLOT_SIZE;
+        i = putLong(i, System.currentTimeMillis());
+        byte[] address = client.getAddress();
+        slots[i++] = (byte) address.length;
+        System.arraycopy(address, 0, slots, i, address.length);
+        i += 16;
+        i = putShort(i, clientPort);
+        i = putShort(i, question.qType);
+        i = putShort(i, question.qClass);
+        slots[i++] = rcode;
+        slots[i++] = source;
+        i = putInt(i, (int) Math.min(latencyMicros, Integer.MAX_VALUE));
+
+        // name as dotted text, cut off at 255 bytes
+        int lengthAt = i++;
+        int end = i + 255;
+        ArrayList<String> qName = question.qName;
+        for (int l=0; l<qName.size() && i<end; l++) {
+            if (l > 0) {
+                slots[i++] = '.';
+            }
+            String label = qName.get(l);
+            for (int c=0; c<label.length() && i<end; c++) {
+                slots[i++] = (byte) label.charAt(c);
+            }
+        }
+        slots[lengthAt] = (byte) (i - lengthAt - 1);
+
+        sequences.set((int) pos & (CAPACITY - 1), pos + 1);     // publish to the writer
+    }
+
+    static int putLong(int i, long v) {
+        i = putInt(i, (int) (v >>> 32));
+        return putInt(i, (int) v);
+    }
+
+    static int putInt(int i, int v) {
+        i = putShort(i, v >>> 16);
+        return putShort(i, v);
+    }
+
+    static int putShort(int i, int v) {
+        slots[i] = (byte) (v >>> 8);
+        slots[i + 1] = (byte) v;
+        return i + 2;
+    }
+
+    /**
+     * Writes the oldest published record to the file in its compact form (only as much of the
+     * address and name as is used) and frees its slot.
+     * @return false if there was no record ready
+     */
+    static boolean poll(DataOutputStream out) throws IOException {
+        int index = (int) tail & (CAPACITY - 1);
+        if (sequences.get(index) != tail + 1) {
+            return false;
+        }
+
+        boolean written = false;
+        try {
+            int i = index * SLOT_SIZE;
+            out.write(slots, i, 8);                             // timestamp
+            int addressLength = slots[i + 8];
+            out.write(slots, i + 8, 1 + addressLength);         // address length and address
+            out.write(slots, i + 25, 2 + 2 + 2 + 1 + 1 + 4);    // port, type, class, rcode, source, latency
+            int nameLength = slots[i + 37] & 0xFF;
+            out.write(slots, i + 37, 1 + nameLength);           // name length and name
+            written = true;
+        }
+        finally {
+            // a record that failed part way is dropped, never written again into the next file
+            if (!written) {
+                dropped.incrementAndGet();
+            }
+            sequences.set(index, tail + CAPACITY);
+            tail++;
+        }
+        return true;
+    }
+}
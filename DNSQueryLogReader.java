@@ -0,0 +1,192 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class DNSQueryLogReader {
+
+    static final String[] SOURCES = {"upstream", "cache", "local", "peer", "peer-cache", "peer-upstream"};
+
+    static class Entry {
+        long timestamp;
+        InetAddress client;
+        int clientPort;
+        DNSQuestion question = new DNSQuestion();
+        byte rcode;
+        byte source;
+        int latencyMicros;
+    }
+
+    static final int REPLY_WAIT_MS = 2000;     // for replies still missing after the last query
+
+    /**
+     * Prints the records in query log files written by DNSQueryLog, one line per query, or with
+     * --replay host:port sends the same questions to a server at the same offsets from the first
+     * one as they were logged. Replies are read on another thread and matched to their queries by
+     * ID, so a slow reply never delays the queries after it.
+     * @param args - [--replay host:port] file...
+     * @throws IOException (reading the files or sending queries)
+     */
+    public static void main(String[] args) throws IOException {
+        InetSocketAddress replay = null;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("--replay")) {
+            replay = DNSPeerCluster.parseMember(args[1]);
+            first = 2;
+        }
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // ID of each query sent and not yet answered -> System.nanoTime() it was sent
+            ConcurrentHashMap<Short, Long> outstanding = new ConcurrentHashMap<>();
+            AtomicInteger answered = new AtomicInteger();
+            AtomicLong latencyMicros = new AtomicLong();
+            if (replay != null) {
+                Thread receiver = new Thread(() -> receiveReplies(socket, outstanding, answered, latencyMicros),
+                        "replay-receiver");
+                receiver.setDaemon(true);
+                receiver.start();
+            }
+
+            long firstTimestamp = 0;
+            long startNanos = 0;
+            long maxLagMicros = 0;
+            int sent = 0;
+
+            for (String file : Arrays.copyOfRange(args, first, args.length)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    byte[] magic = in.readNBytes(DNSQueryLog.MAGIC.length);
+                    if (!Arrays.equals(magic, DNSQueryLog.MAGIC)) {
+                        System.out.println(file + " is not a query log");
+                        continue;
+                    }
+
+                    Entry e;
+                    while ((e = read(in)) != null) {
+                        if (replay == null) {
+                            System.out.println(Instant.ofEpochMilli(e.timestamp)
+                                    + " " + e.client.getHostAddress() + ":" + e.clientPort
+                                    + " " + String.join(".", e.question.qName)
+                                    + " type=" + e.question.qType
+                                    + " class=" + e.question.qClass
+                                    + " rcode=" + e.rcode
+                                    + " " + SOURCES[e.source]
+                                    + " " + e.latencyMicros + "us");
+                            continue;
+                        }
+
+                        // send at the logged offset from the first query, whatever the ones before
+                        // it cost, so the gaps don't add up to drift
+                        if (sent == 0) {
+                            firstTimestamp = e.timestamp;
+                            startNanos = System.nanoTime();
+                        }
+                        long due = startNanos + Math.max(0, e.timestamp - firstTimestamp) * 1_000_000;
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        maxLagMicros = Math.max(maxLagMicros, -wait / 1000);
+
+                        short id = (short) sent;        // unique among the last 65536 queries
+                        byte[] query = buildQuery(e.question, id);
+                        outstanding.put(id, System.nanoTime());
+                        socket.send(new DatagramPacket(query, query.length, replay));
+                        sent++;
+                    }
+                }
+            }
+
+            if (replay != null) {
+                long giveUp = System.nanoTime() + REPLY_WAIT_MS * 1_000_000L;
+                while (!outstanding.isEmpty() && System.nanoTime() < giveUp) {
+                    LockSupport.parkNanos(10_000_000);
+                }
+                int replies = answered.get();
+                System.out.println("Replayed " + sent + " queries, " + replies + " answered, "
+                        + outstanding.size() + " unanswered, at most " + maxLagMicros + "us behind the log"
+                        + (replies > 0 ? ", " + latencyMicros.get() / replies + "us average reply" : ""));
+            }
+        }
+    }
+
+    /**
+     * Reads replies until the socket is closed, and counts each one that answers a query still
+     * outstanding. Replies to no query (or one already answered) are ignored.
+     */
+    static void receiveReplies(DatagramSocket socket, ConcurrentHashMap<Short, Long> outstanding,
+                               AtomicInteger answered, AtomicLong latencyMicros) {
+        byte[] receive = new byte[65535];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(receive, receive.length);
+            try {
+                socket.receive(packet);
+            }
+            catch (IOException e) {
+                return;         // closed at the end of the replay
+            }
+            if (packet.getLength() < 2) {
+                continue;
+            }
+            short id = (short) ((receive[0] << 8) | (receive[1] & 0xFF));
+            Long sentAt = outstanding.remove(id);
+            if (sentAt != null) {
+                answered.incrementAndGet();
+                latencyMicros.addAndGet((System.nanoTime() - sentAt) / 1000);
+            }
+        }
+    }
+
+    /**
+     * @return the next record in the file, or null at the end of it (including a last record cut
+     * short by a write error or a crash)
+     */
+    static Entry read(DataInputStream in) throws IOException {
+        Entry e = new Entry();
+        try {
+            e.timestamp = in.readLong();
+            e.client = InetAddress.getByAddress(in.readNBytes(in.readUnsignedByte()));
+            e.clientPort = in.readUnsignedShort();
+            e.question.qType = in.readShort();
+            e.question.qClass = in.readShort();
+            e.rcode = in.readByte();
+            e.source = in.readByte();
+            e.latencyMicros = in.readInt();
+
+            int nameLength = in.readUnsignedByte();
+            byte[] nameBytes = in.readNBytes(nameLength);
+            if (nameBytes.length != nameLength) {
+                return null;
+            }
+            String name = new String(nameBytes);
+            e.question.qName = name.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(name.split("\\.")));
+        }
+        catch (EOFException | UnknownHostException end) {
+            return null;
+        }
+        return e;
+    }
+
+    static byte[] buildQuery(DNSQuestion question, short id) throws IOException {
+        DNSMessage query = new DNSMessage();
+        query.header = new DNSHeader();
+        query.header.id = id;
+        query.header.idArr = new byte[]{(byte) (id >>> 8), (byte) id};
+        query.header.rd = true;
+        query.header.qdcount = 1;
+        query.questions.add(question);
+        return query.toBytes(query);
+    }
+}
@@ -16,6 +16,7 @@ public class DNSRecord {
     long timestamp;
     short rdlength;
     byte[] rdata;
+    int rdataOffset;    // where rdata starts in the message, for reading compressed names out of it
 
     static DNSRecord decodeRecord(InputStream inStream, DNSMessage msg) throws IOException {
         DNSRecord record = new DNSRecord();
@@ -62,6 +63,7 @@ public class DNSRecord {
         record.rdlength = (short) (bytesIn[0] << 8);
         record.rdlength = (short) (record.rdlength | (bytesIn[1] & 0xFF));
 
+        record.rdataOffset = msg.bytes.length - inStream.available();
         if (record.rdlength > 0) {
             record.rdata = inStream.readNBytes(record.rdlength);
         }
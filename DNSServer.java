@@ -1,40 +1,106 @@
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class DNSServer {
 
+    static final int WORKERS = 32;
+
     static Inet4Address queryAddress;
     static int queryPort;
+    static int port = 8053;
+
+    // get the responses to cache misses, so one slow upstream query doesn't hold up the others
+    static ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread t = new Thread(r, "miss-worker");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
-     * This class opens a UDP socket (DatagramSocket) and listens for requests on Port 8053.
+     * This class opens a UDP socket (DatagramSocket) and listens for requests on Port 8053 (or --port).
      * When it gets on, it looks at the question (Assumption: there is only one) in the
-     * request. If there is a valid answer in the cache, add it to the response. Otherwise,
-     * forward the request to Google (8.8.8.8) on Port 53 and then await the response, cache
-     * the answer from Google (if there is one) and forward Google's response to the client.
-     * @param args
+     * request. If the name is in a local zone or blocklist (--zone, --blocklist), answer it
+     * locally. If there is a valid answer in the cache, add it to the response. Otherwise, hand
+     * it to a worker thread that, with --peers, asks the instance that owns the question, and if
+     * there is none (or it is this one, or it does not answer) forwards the request to Google
+     * (8.8.8.8) on Port 53 (or with --iterative, resolves it from the root servers down, or with
+     * --tls, sends it over DNS-over-TLS) and then awaits the response, caches the answer (if
+     * there is one) and forwards the response to the client.
+     * @param args - optional --zone <hosts file> and --blocklist <file> (both repeatable),
+     *             --iterative with optional --root-hints <hosts file> and --auth-port <port>,
+     *             --tls <host[:port]> with optional --tls-pool <connections>,
+     *             --port <port>, --peers <host:port,...> with --peer-self <host:port>,
+     *             --query-log <directory> with optional --query-log-mb <size of each file>
+     *             and --query-log-keep <number of files>
      * @throws IOException for errors in reading from or writing to byte array streams
      */
     public static void main(String[] args) throws IOException {
         boolean done = false;
 
+        // Command line options
+        for (int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--zone" -> DNSLocalData.zoneFiles.add(new File(args[++i]));
+                case "--blocklist" -> DNSLocalData.blockFiles.add(new File(args[++i]));
+                case "--iterative" -> DNSIterativeResolver.enabled = true;
+                case "--root-hints" -> DNSIterativeResolver.loadRootHints(new File(args[++i]));
+                case "--auth-port" -> DNSIterativeResolver.authPort = Integer.parseInt(args[++i]);
+                case "--tls" -> {
+                    // host or host:port of a DNS-over-TLS resolver
+                    DNSTLSUpstream.enabled = true;
+                    String[] hostPort = args[++i].split(":");
+                    DNSTLSUpstream.host = hostPort[0];
+                    if (hostPort.length > 1) {
+                        DNSTLSUpstream.port = Integer.parseInt(hostPort[1]);
+                    }
+                }
+                case "--tls-pool" -> DNSTLSUpstream.poolSize = Integer.parseInt(args[++i]);
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--peers" -> DNSPeerCluster.addMembers(args[++i]);
+                case "--peer-self" -> DNSPeerCluster.self = DNSPeerCluster.parseMember(args[++i]);
+                case "--query-log" -> DNSQueryLog.directory = new File(args[++i]);
+                case "--query-log-mb" -> DNSQueryLog.maxFileBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+                case "--query-log-keep" -> DNSQueryLog.keepFiles = Integer.parseInt(args[++i]);
+                default -> System.out.println("Unknown option: " + args[i]);
+            }
+        }
+
+        // Local zones and blocklists, answered before the cache
+        if (!DNSLocalData.zoneFiles.isEmpty() || !DNSLocalData.blockFiles.isEmpty()) {
+            DNSLocalData.start(10);
+        }
+
+        // Binary log of every query, written by a background thread
+        if (DNSQueryLog.directory != null) {
+            DNSQueryLog.start();
+        }
+
         // Test Socket
         try{
-            DatagramSocket testSocket = new DatagramSocket(8053);
+            DatagramSocket testSocket = new DatagramSocket(port);
             testSocket.close();
         }
         catch(Exception e){
-            System.out.println("Could not open socket:8053");
+            System.out.println("Could not open socket:" + port);
             done = true;
         }
 
+        // Peers sharing their caches, each asked for the questions it owns
+        if (!DNSPeerCluster.ring.isEmpty()) {
+            DNSPeerCluster.start();
+        }
+
         // Initialize Socket and DatagramPacket
-        DatagramSocket dgSocket = new DatagramSocket(8053);
+        DatagramSocket dgSocket = new DatagramSocket(port);
         byte[] receive = new byte[1500];     // IPv4 standard must reassemble packets of 576 bytes
                                             // 1500 seems to be the effective MTU across the internet
         DatagramPacket dgPacket = null;
@@ -47,6 +113,7 @@ public class DNSServer {
 
             // receive the data in byte buffer
             dgSocket.receive(dgPacket);
+            long startNanos = System.nanoTime();
             byte[] receivedData = dgPacket.getData();     // returns a byte array
             int queryLength = dgPacket.getLength();
             queryAddress = (Inet4Address) dgPacket.getAddress();    // save query address and port number for response
@@ -55,53 +122,42 @@ public class DNSServer {
             // print out the contents of the byte array
 //            System.out.println("Query Array: " + Arrays.toString(receivedData));
 
-            // decode dns query
-            DNSMessage msg = DNSMessage.decodeMessage(receivedData);
+            // decode dns query, and drop anything that is not one
+            DNSMessage msg;
+            try {
+                msg = DNSMessage.decodeMessage(receivedData);
+            }
+            catch (IOException | RuntimeException e) {
+                System.out.println("Could not decode query from " + queryAddress + ": " + e);
+                continue;
+            }
+            if (msg.questions.isEmpty()) {
+                continue;
+            }
+
+            // check local zones and blocklists
+            DNSMessage localResponse = DNSLocalData.answer(msg);
+            if (localResponse != null) {
+                byte[] responseData = localResponse.toBytes(localResponse);
+                DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, queryAddress, queryPort);
+                dgSocket.send(responsePacket);
+                DNSQueryLog.log(queryAddress, queryPort, msg.questions.get(0), localResponse.header.rcode,
+                        DNSQueryLog.SOURCE_LOCAL, startNanos);
+                continue;
+            }
 
             // check the cache
-            boolean inCache = DNSCache.inCache(msg);
-
-            if (!inCache) {
-                // if not in cache, ask google
-                // build datagram packet with google's dns 8.8.8.8 and port 53
-                Inet4Address google = (Inet4Address) Inet4Address.getByName("8.8.8.8");
-                DatagramPacket googlePacket = new DatagramPacket(receivedData, queryLength, google, 53);
-                dgSocket.send(googlePacket);
-//                System.out.println("google packet sent");
-
-                // receive the response from Google and store in a separate byte array
-                byte[] googleReceive = new byte[1500];
-                DatagramPacket googleResponsePacket = new DatagramPacket(googleReceive, googleReceive.length);
-                dgSocket.receive(googleResponsePacket);
-                byte[] googleData = googleResponsePacket.getData();
-                int googleDataLength = googleResponsePacket.getLength();
-
-                // print out the contents of Google's response
-//                System.out.println("Google Array: " + Arrays.toString(googleData));
-
-                // decode response from google
-                DNSMessage googleMsg = DNSMessage.decodeMessage(googleData);
-
-                if (googleMsg.header.qr) {                      // check that qr bit is set
-
-                    // Check that there are Answers in Google's response
-                    // if no answers, nothing to store in cache (also, DNS host not found)
-                    // if addAnswer returns false, error adding to Cache
-                    if (googleMsg.header.ancount > 0 && (!DNSCache.addAnswer(googleMsg))){        // add google answer to cache
-                        System.exit(-1);
-                    }
+            DNSRecord answer = DNSCache.getAnswer(msg);
 
-                    // Forward Google's response to the client
-                    DatagramPacket responsePacket = new DatagramPacket(googleData, googleDataLength, queryAddress, queryPort);
-                    dgSocket.send(responsePacket);
-//                    System.out.println("Google response packet sent to client\n\n");
-                }
-                else {
-                    System.exit(-1);                        // qr bit in response is 0
-                }
+            if (answer == null) {
+                // if not in cache, get the response on a worker thread so this loop can go on to
+                // the next query meanwhile, and misses share the upstream connections
+                byte[] query = Arrays.copyOf(receivedData, queryLength);
+                Inet4Address client = queryAddress;
+                int clientPort = queryPort;
+                workers.execute(() -> answerMiss(dgSocket, msg, query, client, clientPort, startNanos));
             }
             else {
-                DNSRecord answer = DNSCache.getAnswer(msg);     // get cache answer
 //                System.out.println("Cached response!\n");
 
                 // Build packet with Answer from Cache and send to client
@@ -114,9 +170,109 @@ public class DNSServer {
                 // send response packet to client
                 DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, queryAddress, queryPort);
                 dgSocket.send(responsePacket);
+                DNSQueryLog.log(queryAddress, queryPort, msg.questions.get(0), response.header.rcode,
+                        DNSQueryLog.SOURCE_CACHE, startNanos);
 //                System.out.println("Cached response packet sent to client\n\n");
             }
 
         }
     }
+
+    /**
+     * Gets the response to a query that missed the cache, caches the answer (if there is one) and
+     * sends the response to the client. Runs on a worker thread.
+     * @param dgSocket - the socket the query came in on
+     * @param msg - the decoded query
+     * @param data - the query as received
+     * @param client - who asked
+     * @param clientPort - port they asked from
+     * @param startNanos - System.nanoTime() when the query was received, for the query log
+     */
+    static void answerMiss(DatagramSocket dgSocket, DNSMessage msg, byte[] data, Inet4Address client, int clientPort,
+                           long startNanos) {
+        try {
+            byte[] upstreamData = null;
+            byte source = DNSQueryLog.SOURCE_PEER;
+            if (DNSPeerCluster.enabled) {
+                // ask the instance that owns this question
+                upstreamData = DNSPeerCluster.resolve(msg, data, data.length);
+            }
+            if (upstreamData == null) {
+                upstreamData = forward(msg, data, data.length);
+                source = DNSQueryLog.SOURCE_UPSTREAM;
+            }
+
+            // print out the contents of the upstream response
+//            System.out.println("Upstream Array: " + Arrays.toString(upstreamData));
+
+            // decode the upstream response
+            DNSMessage upstreamMsg = DNSMessage.decodeMessage(upstreamData);
+
+            if (upstreamMsg.header.qr) {                      // check that qr bit is set
+
+                // Check that there are Answers in the upstream response
+                // if no answers, nothing to store in cache (also, DNS host not found)
+                // if addAnswer returns false, error adding to Cache
+                if (upstreamMsg.header.ancount > 0 && (!DNSCache.addAnswer(upstreamMsg))){        // add upstream answer to cache
+                    System.out.println("Could not cache the answer for " + msg.questions.get(0));
+                }
+
+                // Forward the upstream response to the client
+                DatagramPacket responsePacket = new DatagramPacket(upstreamData, upstreamData.length, client, clientPort);
+                dgSocket.send(responsePacket);
+                DNSQueryLog.log(client, clientPort, msg.questions.get(0), upstreamMsg.header.rcode, source, startNanos);
+//                System.out.println("Upstream response packet sent to client\n\n");
+            }
+            else {
+                System.out.println("Upstream sent a query instead of a response for " + client);     // qr bit in response is 0
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // a response that could not be decoded, or could not be sent, only loses this query
+            System.out.println("Could not answer " + client + ": " + e);
+        }
+    }
+
+    /**
+     * Gets the response to a query that is not in the cache: resolved iteratively with
+     * --iterative, over DNS-over-TLS with --tls, and from Google (8.8.8.8) otherwise.
+     * Uses its own sockets, so it can be called from any thread.
+     * @param msg - the decoded query
+     * @param data - the query as received
+     * @param length - length of the query in the array
+     * @return the response, with the query's ID
+     * @throws IOException for errors sending or receiving the query
+     */
+    static byte[] forward(DNSMessage msg, byte[] data, int length) throws IOException {
+        if (DNSIterativeResolver.enabled) {
+            // resolve it ourselves starting from the root servers
+            return DNSIterativeResolver.resolve(msg);
+        }
+        if (DNSTLSUpstream.enabled) {
+            // ask over a pooled DNS-over-TLS connection, and answer SERVFAIL while it is down
+            try {
+                return DNSTLSUpstream.resolve(data, length);
+            }
+            catch (IOException e) {
+                System.out.println("Could not reach " + DNSTLSUpstream.host + ": " + e.getMessage());
+                DNSMessage response = DNSMessage.buildResponse(msg, new ArrayList<>(), DNSIterativeResolver.RCODE_SERVFAIL);
+                return response.toBytes(response);
+            }
+        }
+
+        // ask google
+        // build datagram packet with google's dns 8.8.8.8 and port 53
+        try (DatagramSocket googleSocket = new DatagramSocket()) {
+            Inet4Address google = (Inet4Address) Inet4Address.getByName("8.8.8.8");
+            DatagramPacket googlePacket = new DatagramPacket(data, length, google, 53);
+            googleSocket.send(googlePacket);
+//            System.out.println("google packet sent");
+
+            // receive the response from Google and store in a separate byte array
+            byte[] googleReceive = new byte[1500];
+            DatagramPacket googleResponsePacket = new DatagramPacket(googleReceive, googleReceive.length);
+            googleSocket.receive(googleResponsePacket);
+            return Arrays.copyOf(googleResponsePacket.getData(), googleResponsePacket.getLength());
+        }
+    }
 }
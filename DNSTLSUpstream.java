@@ -0,0 +1,207 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+public class DNSTLSUpstream {
+
+    static final int TIMEOUT_MS = 3000;
+    static final int BACKOFF_MS = 2000;        // after a failed connect, before trying to connect again
+
+    static boolean enabled = false;
+    static String host = "dns.google";
+    static int port = 853;
+    static int poolSize = 2;
+
+    // one factory for every connection, so reconnects can resume the TLS session from its cache
+    // instead of doing a full handshake. The trust store comes from the usual javax.net.ssl
+    // properties, so a local stub with a self-signed certificate only needs -Djavax.net.ssl.trustStore
+    static SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+
+    static Connection[] pool;
+    static AtomicInteger next = new AtomicInteger();
+    static volatile long connectAfter = 0;     // System.currentTimeMillis() of the next connect allowed
+
+    /**
+     * A long-lived TLS connection that many queries are written to without waiting for the answers
+     * in between. Each query gets an ID that is unique on this connection, and a reader thread
+     * hands every response to whoever is waiting on that ID.
+     */
+    static class Connection {
+        SSLSocket socket;
+        OutputStream out;
+        ConcurrentHashMap<Short, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        AtomicInteger nextId = new AtomicInteger();
+        volatile boolean open = true;
+        volatile long lastRead = System.nanoTime();    // when the last response arrived
+
+        Connection() throws IOException {
+            socket = (SSLSocket) factory.createSocket();
+            SSLParameters params = socket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");     // check the certificate matches host
+            socket.setSSLParameters(params);
+            socket.setTcpNoDelay(true);
+            try {
+                // a server that accepts the connection but never finishes the handshake gives up in time
+                socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+                socket.setSoTimeout(TIMEOUT_MS);
+                socket.startHandshake();
+                socket.setSoTimeout(0);         // the reader waits for as long as the connection is idle
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            out = socket.getOutputStream();
+
+            Thread reader = new Thread(this::readResponses, "tls-upstream-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void readResponses() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    // over TCP every message is prefixed with its length
+                    byte[] response = new byte[in.readUnsignedShort()];
+                    in.readFully(response);
+                    if (response.length < 12) {
+                        throw new IOException("Response shorter than a DNS header from " + host + ":" + port);
+                    }
+                    lastRead = System.nanoTime();
+                    short id = (short) ((response[0] << 8) | (response[1] & 0xFF));
+                    CompletableFuture<byte[]> waiting = pending.remove(id);
+                    if (waiting != null) {
+                        waiting.complete(response);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        byte[] send(byte[] query, int length) throws IOException {
+            short id = (short) nextId.getAndIncrement();
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            pending.put(id, response);
+
+            byte[] framed = new byte[length + 2];
+            framed[0] = (byte) (length >>> 8);
+            framed[1] = (byte) length;
+            System.arraycopy(query, 0, framed, 2, length);
+            framed[2] = (byte) (id >>> 8);          // replace the client's ID with ours
+            framed[3] = (byte) id;
+
+            long sentAt = System.nanoTime();
+            try {
+                synchronized (this) {
+                    out.write(framed);
+                    out.flush();
+                }
+                byte[] answer = response.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                answer[0] = query[0];                  // and put the client's ID back
+                answer[1] = query[1];
+                return answer;
+            }
+            catch (IOException e) {
+                close(e);
+                throw e;
+            }
+            catch (ExecutionException e) {
+                throw new IOException(e.getCause());    // the connection was closed under it
+            }
+            catch (TimeoutException e) {
+                // only this query is given up on, the others pipelined with it carry on. The
+                // connection is only dropped if nothing at all has come back on it since.
+                if (lastRead - sentAt < 0) {
+                    close(new IOException("No responses from " + host + ":" + port + " for " + TIMEOUT_MS + "ms"));
+                }
+                throw new SocketTimeoutException("No response from " + host + ":" + port);
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for " + host + ":" + port, e);
+            }
+            finally {
+                pending.remove(id);
+            }
+        }
+
+        void close(Exception cause) {
+            open = false;
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+            for (CompletableFuture<byte[]> waiting : pending.values()) {
+                waiting.completeExceptionally(cause);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Sends a query over one of the pooled TLS connections, reconnecting if that connection has
+     * been closed, and retrying once if it fails or times out. A connection that failed has
+     * already been closed, so the retry goes out on a new one.
+     * @param query - the client's query, sent as is apart from the ID
+     * @param length - length of the query in the array
+     * @return the response, with the client's ID
+     * @throws IOException if no response could be had
+     */
+    static byte[] resolve(byte[] query, int length) throws IOException {
+        int slot = Math.floorMod(next.getAndIncrement(), poolSize);
+        try {
+            return connection(slot).send(query, length);
+        }
+        catch (IOException e) {
+            return connection(slot).send(query, length);
+        }
+    }
+
+    static Connection connection(int slot) throws IOException {
+        synchronized (DNSTLSUpstream.class) {
+            if (pool == null) {
+                pool = new Connection[poolSize];
+            }
+            if (pool[slot] != null && pool[slot].open) {
+                return pool[slot];
+            }
+        }
+
+        // while the server is down, fail right away instead of every query waiting on a connect
+        if (System.currentTimeMillis() < connectAfter) {
+            throw new IOException("Could not connect to " + host + ":" + port + " just now, not trying again yet");
+        }
+
+        // connect without holding the lock, so a slow server does not hold up the other slots
+        Connection fresh;
+        try {
+            fresh = new Connection();
+        }
+        catch (IOException e) {
+            connectAfter = System.currentTimeMillis() + BACKOFF_MS;
+            throw e;
+        }
+        synchronized (DNSTLSUpstream.class) {
+            if (pool[slot] != null && pool[slot].open) {
+                fresh.close(new IOException("Another thread reconnected this slot first"));
+                return pool[slot];
+            }
+            pool[slot] = fresh;
+            return fresh;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A fake DNS hierarchy for trying DNSServer --iterative offline. Three authoritative servers
+ * answer on 127.0.0.2-4 (all of 127/8 is loopback on Linux), over UDP and TCP:
+ *   127.0.0.2  the root, refers com and net to ns.tld (glue 127.0.0.3)
+ *   127.0.0.3  com and net, refers example.com to ns.example.com (glue 127.0.0.4) and stub.net
+ *              to ns.example.com without glue, so it has to be looked up
+ *   127.0.0.4  example.com and stub.net:
+ *              www.example.com   CNAME web.stub.net (in another zone, behind the glueless referral)
+ *              web.stub.net      A 10.0.0.80
+ *              mail.example.com  MX 10 mx.example.com, the name compressed against the question
+ *              example.com       SOA with both names compressed against the question
+ *              big.example.com   A, truncated (TC) over UDP and 3 records over TCP
+ *              loop.example.com  CNAME whose rdata is a compression pointer to itself
+ *              anything else     NXDOMAIN
+ * Run: java StubAuthority [port], then DNSServer --iterative --root-hints <file with 127.0.0.2>
+ * --auth-port <port>
+ */
+public class StubAuthority {
+
+    static final short TYPE_A = 1;
+    static final short TYPE_NS = 2;
+    static final short TYPE_CNAME = 5;
+    static final short TYPE_SOA = 6;
+    static final short TYPE_MX = 15;
+    static final byte RCODE_NXDOMAIN = 3;
+
+    static final String ROOT = "127.0.0.2";
+    static final String TLD = "127.0.0.3";
+    static final String AUTH = "127.0.0.4";
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5300;
+        for (String server : new String[]{ROOT, TLD, AUTH}) {
+            InetSocketAddress address = new InetSocketAddress(server, port);
+            DatagramSocket udp = new DatagramSocket(address);
+            ServerSocket tcp = new ServerSocket();
+            tcp.bind(address);
+            start("udp-" + server, () -> serveUdp(udp, server));
+            start("tcp-" + server, () -> serveTcp(tcp, server));
+        }
+        System.out.println("Stub authorities on " + ROOT + ", " + TLD + " and " + AUTH + " port " + port);
+    }
+
+    interface Loop {
+        void run() throws IOException;
+    }
+
+    static void start(String name, Loop loop) {
+        new Thread(() -> {
+            try {
+                loop.run();
+            }
+            catch (IOException e) {
+                System.out.println(name + " stopped: " + e);
+            }
+        }, name).start();
+    }
+
+    static void serveUdp(DatagramSocket socket, String server) throws IOException {
+        byte[] receive = new byte[512];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(receive, receive.length);
+            socket.receive(packet);
+            byte[] reply = reply(Arrays.copyOf(packet.getData(), packet.getLength()), server, false);
+            if (reply != null) {
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            }
+        }
+    }
+
+    static void serveTcp(ServerSocket serverSocket, String server) throws IOException {
+        while (true) {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                byte[] reply = reply(query, server, true);
+                if (reply != null) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeShort(reply.length);
+                    out.write(reply);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                System.out.println("tcp-" + server + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the reply to a query sent to one of the stub servers, or null to ignore it
+     */
+    static byte[] reply(byte[] query, String server, boolean tcp) throws IOException {
+        DNSMessage msg;
+        try {
+            msg = DNSMessage.decodeMessage(query);
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+        if (msg.questions.isEmpty()) {
+            return null;
+        }
+        String name = String.join(".", msg.questions.get(0).qName).toLowerCase();
+        short type = msg.questions.get(0).qType;
+        System.out.println(server + (tcp ? " tcp " : " udp ") + name + " type " + type);
+
+        Reply r = new Reply(query);
+        if (server.equals(ROOT)) {
+            if (name.endsWith("com") || name.endsWith("net")) {
+                String tld = name.substring(name.lastIndexOf('.') + 1);
+                r.authority(name(tld), TYPE_NS, name("ns.tld"));
+                r.additional(name("ns.tld"), TYPE_A, address(TLD));
+                return r.build(false, false, 0);
+            }
+        }
+        else if (server.equals(TLD)) {
+            if (inZone(name, "example.com")) {
+                r.authority(name("example.com"), TYPE_NS, name("ns.example.com"));
+                r.additional(name("ns.example.com"), TYPE_A, address(AUTH));
+                return r.build(false, false, 0);
+            }
+            if (inZone(name, "stub.net")) {
+                r.authority(name("stub.net"), TYPE_NS, name("ns.example.com"));      // glueless
+                return r.build(false, false, 0);
+            }
+        }
+        else if (server.equals(AUTH)) {
+            switch (name) {
+                case "ns.example.com" -> r.answer(TYPE_A, address(AUTH));
+                case "web.stub.net" -> r.answer(TYPE_A, address("10.0.0.80"));
+                case "www.example.com" -> r.answer(TYPE_CNAME, name("web.stub.net"));
+                case "mail.example.com" -> {
+                    // "mx" then a pointer to "example.com" inside the question, at 12 + 5 ("\4mail")
+                    r.answer(TYPE_MX, concat(new byte[]{0, 10}, label("mx"), pointer(17)));
+                }
+                case "example.com" -> {
+                    ByteArrayOutputStream soa = new ByteArrayOutputStream();
+                    soa.write(concat(label("ns"), pointer(12)));
+                    soa.write(concat(label("hostmaster"), pointer(12)));
+                    DataOutputStream timers = new DataOutputStream(soa);
+                    timers.writeInt(2024010101);    // serial
+                    timers.writeInt(3600);          // refresh
+                    timers.writeInt(600);           // retry
+                    timers.writeInt(86400);         // expire
+                    timers.writeInt(300);           // minimum
+                    r.answer(TYPE_SOA, soa.toByteArray());
+                }
+                case "big.example.com" -> {
+                    if (!tcp) {
+                        return r.build(true, true, 0);
+                    }
+                    for (int i=1; i<=3; i++) {
+                        r.answer(TYPE_A, address("10.0.0." + i));
+                    }
+                }
+                case "loop.example.com" -> {
+                    // the rdata starts right after the record's fixed fields, point it at itself
+                    r.answer(TYPE_CNAME, pointer(r.nextRdataOffset()));
+                }
+                default -> {
+                    return r.build(true, false, RCODE_NXDOMAIN);
+                }
+            }
+            return r.build(true, false, 0);
+        }
+        return r.build(true, false, RCODE_NXDOMAIN);
+    }
+
+    static boolean inZone(String name, String zone) {
+        return name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /**
+     * A reply being built: the query's ID and question, then the records of each section.
+     */
+    static class Reply {
+        byte[] query;
+        int questionEnd;
+        ByteArrayOutputStream answers = new ByteArrayOutputStream();
+        ByteArrayOutputStream authority = new ByteArrayOutputStream();
+        ByteArrayOutputStream additional = new ByteArrayOutputStream();
+        int ancount, nscount, arcount;
+
+        Reply(byte[] query) {
+            this.query = query;
+            int i = 12;
+            while (query[i] != 0) {
+                i += (query[i] & 0xFF) + 1;
+            }
+            questionEnd = i + 1 + 4;
+        }
+
+        void answer(short type, byte[] rdata) throws IOException {
+            record(answers, pointer(12), type, rdata);      // owner is the question's name
+            ancount++;
+        }
+
+        void authority(byte[] owner, short type, byte[] rdata) throws IOException {
+            record(authority, owner, type, rdata);
+            nscount++;
+        }
+
+        void additional(byte[] owner, short type, byte[] rdata) throws IOException {
+            record(additional, owner, type, rdata);
+            arcount++;
+        }
+
+        /**
+         * @return where the rdata of the next answer will start, as long as it is the only answer
+         */
+        int nextRdataOffset() {
+            return questionEnd + answers.size() + 2 + 2 + 2 + 4 + 2;
+        }
+
+        byte[] build(boolean aa, boolean tc, int rcode) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(query, 0, 2);                                         // ID
+            out.writeByte(0x80 | (aa ? 0x04 : 0) | (tc ? 0x02 : 0));        // qr, aa, tc
+            out.writeByte(rcode);
+            out.writeShort(1);
+            out.writeShort(ancount);
+            out.writeShort(nscount);
+            out.writeShort(arcount);
+            out.write(query, 12, questionEnd - 12);
+            answers.writeTo(out);
+            authority.writeTo(out);
+            additional.writeTo(out);
+            return bytes.toByteArray();
+        }
+    }
+
+    static void record(ByteArrayOutputStream section, byte[] owner, short type, byte[] rdata) throws IOException {
+        DataOutputStream out = new DataOutputStream(section);
+        out.write(owner);
+        out.writeShort(type);
+        out.writeShort(1);          // IN
+        out.writeInt(3600);
+        out.writeShort(rdata.length);
+        out.write(rdata);
+    }
+
+    static byte[] name(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String l : name.split("\\.")) {
+            out.writeBytes(label(l));
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    static byte[] label(String label) {
+        byte[] bytes = new byte[label.length() + 1];
+        bytes[0] = (byte) label.length();
+        System.arraycopy(label.getBytes(), 0, bytes, 1, label.length());
+        return bytes;
+    }
+
+    static byte[] pointer(int offset) {
+        return new byte[]{(byte) (0xC0 | (offset >>> 8)), (byte) offset};
+    }
+
+    static byte[] address(String ipv4) throws IOException {
+        return InetAddress.getByName(ipv4).getAddress();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * Sends one query and prints the response on one line, so the check scripts can compare it:
+ *   rcode=0 tc=false answers=2 | www.example.com CNAME web.stub.net | web.stub.net A 10.0.0.80 | 12ms
+ * Names in rdata are printed as they are on the wire, so one that was left compressed shows
+ * up as "<pointer>".
+ * Run: java StubClient host:port name [type number], or java StubClient host:port --pointer-loop
+ * to send a query whose name is a compression pointer to itself. With --from <address> first,
+ * the query is sent from that local address.
+ */
+public class StubClient {
+
+    public static void main(String[] args) throws IOException {
+        InetSocketAddress from = new InetSocketAddress(0);
+        if (args[0].equals("--from")) {
+            from = new InetSocketAddress(args[1], 0);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        String[] hostPort = args[0].split(":");
+        InetSocketAddress server = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        byte[] query = args[1].equals("--pointer-loop")
+                ? new byte[]{0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0, (byte) 0xC0, 12, 0, 1, 0, 1}
+                : query(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 1);
+
+        try (DatagramSocket socket = new DatagramSocket(from)) {
+            socket.setSoTimeout(10000);
+            long start = System.nanoTime();
+            socket.send(new DatagramPacket(query, query.length, server));
+            byte[] receive = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(receive, receive.length);
+            socket.receive(packet);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+
+            DNSMessage response = DNSMessage.decodeMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+            StringBuilder line = new StringBuilder("rcode=" + response.header.rcode
+                    + " tc=" + response.header.tc + " answers=" + response.answers.size());
+            for (DNSRecord r : response.answers) {
+                line.append(" | ").append(String.join(".", r.name)).append(" ").append(rdata(r));
+            }
+            System.out.println(line + " | " + ms + "ms");
+        }
+        catch (SocketTimeoutException e) {
+            System.out.println("no response");
+            System.exit(1);
+        }
+    }
+
+    static byte[] query(String name, int type) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0x1234);     // ID
+        out.writeShort(0x0100);     // rd
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        for (String label : name.split("\\.")) {
+            out.writeByte(label.length());
+            out.writeBytes(label);
+        }
+        out.writeByte(0);
+        out.writeShort(type);
+        out.writeShort(1);
+        return bytes.toByteArray();
+    }
+
+    static String rdata(DNSRecord r) throws IOException {
+        byte[] d = r.rdata == null ? new byte[0] : r.rdata;
+        return switch (r.type) {
+            case 1 -> "A " + InetAddress.getByAddress(d).getHostAddress();
+            case 2 -> "NS " + name(d, 0);
+            case 5 -> "CNAME " + name(d, 0);
+            case 6 -> {
+                int rname = 0;
+                while (rname < d.length && d[rname] != 0 && (d[rname] & 0xC0) == 0) {
+                    rname += (d[rname] & 0xFF) + 1;
+                }
+                yield "SOA " + name(d, 0) + " " + name(d, rname + 1);
+            }
+            case 15 -> "MX " + (((d[0] & 0xFF) << 8) | (d[1] & 0xFF)) + " " + name(d, 2);
+            default -> "type" + r.type + " " + d.length + " bytes";
+        };
+    }
+
+    /**
+     * @return the uncompressed name starting at i in the rdata, with "<pointer>" in place of
+     * the rest of the name if it ends in a compression pointer
+     */
+    static String name(byte[] d, int i) {
+        StringBuilder name = new StringBuilder();
+        while (i < d.length && d[i] != 0) {
+            if ((d[i] & 0xC0) != 0) {
+                return name.append("<pointer>").toString();
+            }
+            int length = d[i] & 0xFF;
+            name.append(new String(d, i + 1, Math.min(length, d.length - i - 1))).append('.');
+            i += length + 1;
+        }
+        return name.length() == 0 ? "." : name.substring(0, name.length() - 1);
+    }
+}
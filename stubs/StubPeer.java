@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Arrays;
+
+/**
+ * A broken cluster member for trying DNSServer --peers offline. It answers every peer query
+ * with a reply DNSServer must not trust:
+ *   --ancount  a header claiming 5 answers, with none after it
+ *   --query    the query sent straight back (qr not set)
+ *   --id       a good looking reply with the wrong ID
+ * Each query is printed, so a check can count how often the member was still asked.
+ * Run: java StubPeer <port> --ancount|--query|--id
+ */
+public class StubPeer {
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        String mode = args[1];
+        try (DatagramSocket socket = new DatagramSocket(port)) {
+            System.out.println("Broken peer (" + mode + ") on port " + port);
+            byte[] receive = new byte[1500];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(receive, receive.length);
+                socket.receive(packet);
+                byte[] reply = Arrays.copyOf(packet.getData(), packet.getLength());
+                System.out.println("query from " + packet.getSocketAddress());
+                switch (mode) {
+                    case "--ancount" -> {
+                        reply[2] |= (byte) 0x80;        // qr
+                        reply[7] = 5;                   // ancount
+                    }
+                    case "--id" -> {
+                        reply[2] |= (byte) 0x80;
+                        reply[1]++;
+                    }
+                    default -> {
+                        // --query, sent back as it is
+                    }
+                }
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            }
+        }
+    }
+}
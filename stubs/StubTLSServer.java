@@ -0,0 +1,83 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLServerSocketFactory;
+
+/**
+ * A DNS-over-TLS resolver for trying DNSServer --tls offline. Every query on a connection is
+ * answered after a fixed delay, without waiting for the ones before it, with an A record of
+ * 10.0.0.1. Names starting with "silent" are never answered. Each connection and query is
+ * printed, so a check can count how many reached the upstream.
+ * Run: java -Djavax.net.ssl.keyStore=<keystore> -Djavax.net.ssl.keyStorePassword=<password>
+ * StubTLSServer <port> [delay ms], or StubTLSServer <port> --stall for a server that accepts
+ * connections but never says anything (no TLS handshake).
+ */
+public class StubTLSServer {
+
+    static AtomicInteger connections = new AtomicInteger();
+    static ScheduledExecutorService answers = Executors.newScheduledThreadPool(4);
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        if (args.length > 1 && args[1].equals("--stall")) {
+            try (ServerSocket server = new ServerSocket(port)) {
+                System.out.println("Stalling on port " + port);
+                while (true) {
+                    Socket held = server.accept();      // never read from, never closed
+                    System.out.println("connection " + connections.incrementAndGet() + " " + held);
+                }
+            }
+        }
+
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        ServerSocket server = SSLServerSocketFactory.getDefault().createServerSocket(port);
+        System.out.println("DNS-over-TLS stub on port " + port + ", answering after " + delayMs + "ms");
+        while (true) {
+            Socket socket = server.accept();
+            System.out.println("connection " + connections.incrementAndGet());
+            new Thread(() -> serve(socket, delayMs)).start();
+        }
+    }
+
+    static void serve(Socket socket, int delayMs) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                DNSMessage msg = DNSMessage.decodeMessage(query);
+                String name = String.join(".", msg.questions.get(0).qName);
+                System.out.println("query " + name);
+                if (name.startsWith("silent")) {
+                    continue;
+                }
+
+                StubAuthority.Reply reply = new StubAuthority.Reply(query);
+                reply.answer(StubAuthority.TYPE_A, StubAuthority.address("10.0.0.1"));
+                byte[] response = reply.build(false, false, 0);
+                answers.schedule(() -> {
+                    try {
+                        synchronized (out) {
+                            out.writeShort(response.length);
+                            out.write(response);
+                            out.flush();
+                        }
+                    }
+                    catch (IOException e) {
+                        System.out.println("Could not answer " + name + ": " + e);
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println("connection closed: " + e);
+        }
+    }
+}
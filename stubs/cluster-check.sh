@@ -0,0 +1,94 @@
+#!/bin/sh
+# Runs three DNSServer instances sharing their caches (--peers) over a StubTLSServer upstream,
+# and checks that each name goes upstream once, that the peer port only answers members, that a
+# dead member is passed over, and that broken replies from a member (StubPeer) do no harm.
+# Needs keytool on the PATH, 127.0.0.5 on the loopback interface, and ports 8853, 18053-18056
+# and 19001-19005 free.
+cd "$(dirname "$0")/.." || exit 1
+out=$(mktemp -d)
+javac -d "$out" *.java stubs/*.java || exit 1
+
+keytool -genkeypair -alias stub -keyalg RSA -dname CN=localhost -ext SAN=dns:localhost -validity 2 \
+    -keystore "$out/stub.p12" -storepass changeit > /dev/null 2>&1
+keytool -exportcert -alias stub -keystore "$out/stub.p12" -storepass changeit -file "$out/stub.crt" > /dev/null 2>&1
+keytool -importcert -noprompt -alias stub -file "$out/stub.crt" -keystore "$out/trust.p12" -storepass changeit > /dev/null 2>&1
+key="-Djavax.net.ssl.keyStore=$out/stub.p12 -Djavax.net.ssl.keyStorePassword=changeit"
+trust="-Djavax.net.ssl.trustStore=$out/trust.p12 -Djavax.net.ssl.trustStorePassword=changeit"
+
+java $key -cp "$out" StubTLSServer 8853 100 > "$out/upstream.log" 2>&1 &
+pids=$!
+trap 'kill $pids 2>/dev/null' EXIT
+
+# instance <n> <client port> <peer port> <members>
+instance() {
+    java $trust -cp "$out" DNSServer --tls localhost:8853 --port $2 --peers $4 --peer-self 127.0.0.1:$3 \
+        > "$out/instance$1.log" 2>&1 &
+    pids="$pids $!"
+    eval "instance$1=$!"
+}
+members=127.0.0.1:19001,127.0.0.1:19002,127.0.0.1:19003
+instance 1 18053 19001 $members
+instance 2 18054 19002 $members
+instance 3 18055 19003 $members
+sleep 5      # for the JVMs to start and bind their sockets
+
+failed=0
+fail() {
+    echo "FAIL  $*"
+    failed=1
+}
+ask() {
+    java -cp "$out" StubClient "$@"
+}
+
+# every name asked of all three instances in turn, cold, goes upstream exactly once
+for i in 1 2 3 4 5 6 7 8 9 10; do
+    for port in 18053 18054 18055; do
+        got=$(ask 127.0.0.1:$port name$i.cluster)
+        case "$got" in *"A 10.0.0.1"*) ;; *) fail "name$i.cluster from $port: got \"$got\"" ;; esac
+    done
+    sent=$(grep -c "query name$i.cluster" "$out/upstream.log")
+    [ "$sent" = 1 ] || fail "name$i.cluster went upstream $sent times"
+done
+[ $failed = 0 ] && echo "ok    10 names asked of 3 instances, each sent upstream once"
+
+# the peer port does not resolve for anyone but the members
+got=$(ask --from 127.0.0.5 127.0.0.1:19001 stranger.cluster)
+if [ "$got" = "no response" ] && ! grep -q "query stranger.cluster" "$out/upstream.log"; then
+    echo "ok    query to the peer port from a non-member: $got"
+else
+    fail "query to the peer port from a non-member: got \"$got\""
+fi
+
+# with instance 3 dead, only the first of its questions waits for it, the rest go elsewhere
+kill $instance3
+slow=0
+for i in 1 2 3 4 5 6 7 8 9 10 11 12; do
+    got=$(ask 127.0.0.1:18053 dead$i.cluster)
+    case "$got" in *"A 10.0.0.1"*) ;; *) fail "dead$i.cluster: got \"$got\"" ;; esac
+    ms=${got##*| }
+    [ "${ms%ms}" -gt 1000 ] && slow=$((slow + 1))
+done
+[ $slow -le 1 ] && echo "ok    12 names with a dead member, $slow waited on it" \
+    || fail "$slow of 12 names waited on the dead member"
+
+# a member sending broken replies: every query still gets its answer, the instance stays up,
+# and the member is only asked once before it is passed over
+for mode in --ancount --query --id; do
+    java -cp "$out" StubPeer 19005 $mode > "$out/peer$mode.log" 2>&1 &
+    peer=$!
+    instance 4 18056 19004 127.0.0.1:19004,127.0.0.1:19005
+    sleep 5
+    for i in 1 2 3 4 5 6 7 8 9 10; do
+        got=$(ask 127.0.0.1:18056 broken$i$mode.cluster)
+        case "$got" in *"A 10.0.0.1"*) ;; *) fail "broken$i$mode.cluster: got \"$got\"" ;; esac
+    done
+    asked=$(grep -c "query from" "$out/peer$mode.log")
+    [ "$asked" = 1 ] && echo "ok    member replying $mode: 10 names answered, it was asked once" \
+        || fail "member replying $mode was asked $asked times"
+    kill $peer $instance4
+    sleep 1
+done
+
+echo "logs in $out"
+exit $failed
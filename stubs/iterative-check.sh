@@ -0,0 +1,37 @@
+#!/bin/sh
+# Runs DNSServer --iterative against the fake hierarchy in StubAuthority and checks its answers.
+# Needs 127.0.0.2-4 on the loopback interface (Linux has all of 127/8) and port 8053 free.
+cd "$(dirname "$0")/.." || exit 1
+out=$(mktemp -d)
+javac -d "$out" *.java stubs/*.java || exit 1
+echo 127.0.0.2 > "$out/root-hints"
+
+java -cp "$out" StubAuthority 5300 > "$out/stub.log" 2>&1 &
+stub=$!
+java -cp "$out" DNSServer --iterative --root-hints "$out/root-hints" --auth-port 5300 > "$out/server.log" 2>&1 &
+server=$!
+trap 'kill $stub $server 2>/dev/null' EXIT
+sleep 2
+
+failed=0
+check() {
+    expected=$1
+    shift
+    got=$(java -cp "$out" StubClient 127.0.0.1:8053 "$@")
+    case "$got" in
+        *"$expected"*) echo "ok    $*: $got" ;;
+        *) echo "FAIL  $*: expected \"$expected\", got \"$got\""; failed=1 ;;
+    esac
+}
+
+check "web.stub.net A 10.0.0.80" www.example.com                # CNAME into a glueless zone
+check "MX 10 mx.example.com" mail.example.com 15                 # compressed MX exchange
+check "SOA ns.example.com hostmaster.example.com" example.com 6  # both SOA names expanded
+check "answers=3" big.example.com                                # TC over UDP, retried over TCP
+check "rcode=2" loop.example.com                                 # pointer loop in rdata: SERVFAIL
+check "rcode=3" nothing.example.com                              # NXDOMAIN passed through
+check "no response" --pointer-loop                               # dropped, the server keeps going
+check "web.stub.net A 10.0.0.80" web.stub.net                    # ... as this shows
+
+echo "server log: $out/server.log, stub log: $out/stub.log"
+exit $failed
@@ -0,0 +1,78 @@
+#!/bin/sh
+# Runs DNSServer --tls against StubTLSServer and checks pipelining, lost answers and outages.
+# Needs keytool on the PATH and ports 8053, 8853 and 8854 free.
+cd "$(dirname "$0")/.." || exit 1
+out=$(mktemp -d)
+javac -d "$out" *.java stubs/*.java || exit 1
+
+# a self-signed certificate for localhost, and a trust store with it for DNSServer
+keytool -genkeypair -alias stub -keyalg RSA -dname CN=localhost -ext SAN=dns:localhost -validity 2 \
+    -keystore "$out/stub.p12" -storepass changeit > /dev/null 2>&1
+keytool -exportcert -alias stub -keystore "$out/stub.p12" -storepass changeit -file "$out/stub.crt" > /dev/null 2>&1
+keytool -importcert -noprompt -alias stub -file "$out/stub.crt" -keystore "$out/trust.p12" -storepass changeit > /dev/null 2>&1
+key="-Djavax.net.ssl.keyStore=$out/stub.p12 -Djavax.net.ssl.keyStorePassword=changeit"
+trust="-Djavax.net.ssl.trustStore=$out/trust.p12 -Djavax.net.ssl.trustStorePassword=changeit"
+
+java $key -cp "$out" StubTLSServer 8853 100 > "$out/stub.log" 2>&1 &
+stub=$!
+java -cp "$out" StubTLSServer 8854 --stall > "$out/stall.log" 2>&1 &
+stall=$!
+java $trust -cp "$out" DNSServer --tls localhost:8853 --tls-pool 1 > "$out/server.log" 2>&1 &
+server=$!
+trap 'kill $stub $stall $server 2>/dev/null' EXIT
+sleep 2
+
+failed=0
+fail() {
+    echo "FAIL  $*"
+    failed=1
+}
+check() {
+    expected=$1
+    shift
+    got=$(java -cp "$out" StubClient 127.0.0.1:8053 "$@")
+    case "$got" in
+        *"$expected"*) echo "ok    $*: $got" ;;
+        *) fail "$*: expected \"$expected\", got \"$got\"" ;;
+    esac
+}
+
+check "A 10.0.0.1" first.example
+
+# ten queries pipelined on the one connection while another never gets an answer. Giving up on
+# that one must not take the others down with it, so each of the ten reaches the stub only once.
+java -cp "$out" StubClient 127.0.0.1:8053 silent.example > "$out/silent.txt" &
+pids=$!
+sleep 0.5
+for i in 1 2 3 4 5 6 7 8 9 10; do
+    java -cp "$out" StubClient 127.0.0.1:8053 pipelined$i.example > "$out/pipelined$i.txt" &
+    pids="$pids $!"
+done
+wait $pids
+for i in 1 2 3 4 5 6 7 8 9 10; do
+    sent=$(grep -c "query pipelined$i.example" "$out/stub.log")
+    grep -q "A 10.0.0.1" "$out/pipelined$i.txt" && [ "$sent" = 1 ] \
+        || fail "pipelined$i.example: sent upstream $sent times, got \"$(cat "$out/pipelined$i.txt")\""
+done
+[ $failed = 0 ] && echo "ok    10 pipelined queries answered, each sent upstream once"
+grep -q "rcode=2" "$out/silent.txt" && echo "ok    silent.example: $(cat "$out/silent.txt")" \
+    || fail "silent.example: expected SERVFAIL, got \"$(cat "$out/silent.txt")\""
+
+# an upstream that accepts connections but never finishes the handshake: the first query waits
+# out the handshake timeout, the next ones get SERVFAIL at once instead of connecting again
+kill $server
+java $trust -cp "$out" DNSServer --tls localhost:8854 > "$out/server2.log" 2>&1 &
+server=$!
+sleep 2
+check "rcode=2" stalled1.example
+got=$(java -cp "$out" StubClient 127.0.0.1:8053 stalled2.example)
+ms=${got##*| }
+ms=${ms%ms}
+if [ "${ms:-99999}" -lt 1000 ] && [ -z "${got##*rcode=2*}" ]; then
+    echo "ok    stalled2.example: $got"
+else
+    fail "stalled2.example: expected SERVFAIL within 1000ms, got \"$got\""
+fi
+
+echo "server logs: $out/server.log $out/server2.log, stub log: $out/stub.log"
+exit $failed